@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2014, Fidesmo AB.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF
+ * THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.fidesmo.oath.hardware;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.concurrent.TimeUnit;
+
+/** Time to stream a generated file of otpauth:// URIs through {@link OtpAuthImporter#importAll}.
+ *  The input is generated while it is read, so it never has to fit in memory. Run with
+ *  "gradle jmh".
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class OtpAuthImporterBenchmark {
+    private static final String PREFIX = "otpauth://totp/Issuer:user";
+    private static final String SUFFIX = "@example.com?secret=GEZDGNBVGY3TQOJQGEZDGNBVGY3TQOJQ&issuer=Issuer&digits=6\n";
+    private static final int NUMBER_LENGTH = 7;
+
+    @Param({"1000000", "5000000"})
+    public int lines;
+
+    /** Produces the given number of distinct lines, numbering the accounts in place
+     */
+    static class GeneratedReader extends Reader {
+        private final char[] line = (PREFIX + "0000000" + SUFFIX).toCharArray();
+        private int remaining;
+        private int pos;
+
+        GeneratedReader(int lines) {
+            this.remaining = lines;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) {
+            if (remaining == 0) {
+                return -1;
+            }
+            int count = 0;
+            while (count < len && remaining > 0) {
+                int n = Math.min(len - count, line.length - pos);
+                System.arraycopy(line, pos, cbuf, off + count, n);
+                count += n;
+                pos += n;
+                if (pos == line.length) {
+                    pos = 0;
+                    remaining--;
+                    increment();
+                }
+            }
+            return count;
+        }
+
+        private void increment() {
+            for (int i = PREFIX.length() + NUMBER_LENGTH - 1; i >= PREFIX.length(); i--) {
+                if (line[i] != '9') {
+                    line[i]++;
+                    return;
+                }
+                line[i] = '0';
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Benchmark
+    public int importAll(final Blackhole blackhole) throws IOException {
+        int accepted = new OtpAuthImporter(new GeneratedReader(lines)).importAll(new OtpAuthImporter.Handler() {
+            public void onEntry(OtpAuthImporter.Entry entry) {
+                blackhole.consume(entry);
+            }
+
+            public void onRejected(int line, String reason) {
+                throw new IllegalStateException("Line " + line + " rejected: " + reason);
+            }
+        });
+        if (accepted != lines) {
+            throw new IllegalStateException("Accepted " + accepted + " of " + lines + " lines");
+        }
+        return accepted;
+    }
+}
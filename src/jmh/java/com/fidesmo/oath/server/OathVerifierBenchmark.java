@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2014, Fidesmo AB.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF
+ * THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.fidesmo.oath.server;
+
+import com.fidesmo.oath.hardware.TokenMeta;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+
+/** Throughput of {@link OathVerifier}, single threaded and with one thread per core spread
+ *  over the stripes of the {@link CounterStore}. Run with "gradle jmh".
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OathVerifierBenchmark {
+    private static final int CREDENTIALS = 1024;
+    private static final int CODES = 1 << 16;
+    private static final byte[] KEY = "12345678901234567890".getBytes();
+    private static final TokenMeta HOTP = new TokenMeta("hotp", 6, TokenMeta.Type.HOTP);
+    private static final TokenMeta TOTP = new TokenMeta("totp", 6, TokenMeta.Type.TOTP);
+
+    @State(Scope.Benchmark)
+    public static class Verifier {
+        File file;
+        CounterStore store;
+        OathVerifier verifier;
+        final AtomicInteger threads = new AtomicInteger();
+
+        @Setup
+        public void setUp() throws IOException {
+            file = File.createTempFile("counters", ".bin");
+            store = new CounterStore(file, CREDENTIALS);
+            verifier = new OathVerifier(store, 10, 1, 1, 20);
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            store.close();
+            file.delete();
+        }
+    }
+
+    /** Per thread credential with precomputed HOTP codes, so every verification is accepted
+     */
+    @State(Scope.Thread)
+    public static class Credential {
+        String id;
+        String[] codes = new String[CODES];
+        int next;
+        long rejected;
+
+        @Setup
+        public void setUp(Verifier verifier) throws Exception {
+            id = "user" + verifier.threads.getAndIncrement() + ":hotp";
+            Mac mac = Mac.getInstance("HmacSHA1");
+            mac.init(new SecretKeySpec(KEY, "HmacSHA1"));
+            for (int i = 0; i < CODES; i++) {
+                byte[] hash = mac.doFinal(new byte[] {0, 0, 0, 0, (byte) (i >>> 24), (byte) (i >>> 16), (byte) (i >>> 8), (byte) i});
+                int offset = hash[hash.length - 1] & 0x0f;
+                int code = ((hash[offset] & 0x7f) << 24) | ((hash[offset + 1] & 0xff) << 16)
+                    | ((hash[offset + 2] & 0xff) << 8) | (hash[offset + 3] & 0xff);
+                codes[i] = String.format("%06d", code % 1000000);
+            }
+        }
+
+        String nextCode(CounterStore store) throws IOException {
+            if (next == CODES) {
+                next = 0;
+                Lock lock = store.getLock(id);
+                lock.lock();
+                try {
+                    store.setCounter(id, 0);
+                } finally {
+                    lock.unlock();
+                }
+            }
+            return codes[next++];
+        }
+    }
+
+    private static boolean verifyAccepted(Verifier verifier, Credential credential) throws IOException {
+        return verifier.verifier.verifyHotp(credential.id, HOTP, KEY, credential.nextCode(verifier.store));
+    }
+
+    private static boolean verifyRejected(Verifier verifier, Credential credential) throws IOException {
+        // A wrong code is checked against the whole window, the most expensive path
+        return verifier.verifier.verifyTotp("user" + (credential.rejected++ % CREDENTIALS) + ":totp",
+                                            TOTP, KEY, "000000", 1111111109L);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean acceptHotp(Verifier verifier, Credential credential) throws IOException {
+        return verifyAccepted(verifier, credential);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public boolean acceptHotpAllCores(Verifier verifier, Credential credential) throws IOException {
+        return verifyAccepted(verifier, credential);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean rejectTotp(Verifier verifier, Credential credential) throws IOException {
+        return verifyRejected(verifier, credential);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public boolean rejectTotpAllCores(Verifier verifier, Credential credential) throws IOException {
+        return verifyRejected(verifier, credential);
+    }
+}
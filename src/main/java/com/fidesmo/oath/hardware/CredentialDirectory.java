@@ -0,0 +1,338 @@
+/*
+ * Copyright (c) 2014, Fidesmo AB.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF
+ * THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.fidesmo.oath.hardware;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Persistent directory of the credentials stored on each of a user's hardware tokens, so
+ *  the card holding a given label or issuer can be found without tapping every card.
+ *
+ *  Cards are keyed by {@link HardwareToken#getId()}. The issuer of a credential is the part
+ *  of its label before the first ':', following the otpauth label convention.
+ */
+public class CredentialDirectory {
+    private static final int FORMAT_VERSION = 1;
+
+    public static class Entry {
+        private final byte[] cardId;
+        private final TokenMeta token;
+        private final String issuer;
+
+        private Entry(byte[] cardId, TokenMeta token) {
+            this.cardId = cardId;
+            this.token = token;
+            this.issuer = parseIssuer(token.getLabel());
+        }
+
+        public byte[] getCardId() {
+            return cardId.clone();
+        }
+
+        public TokenMeta getToken() {
+            return token;
+        }
+
+        /** Return the issuer part of the label, or null if the label has none
+         */
+        public String getIssuer() {
+            return issuer;
+        }
+    }
+
+    private final File file;
+    private final Map<String, Map<String, Entry>> byCard = new HashMap<String, Map<String, Entry>>();
+    private final Map<String, List<Entry>> byLabel = new HashMap<String, List<Entry>>();
+    private final Map<String, List<Entry>> byIssuer = new HashMap<String, List<Entry>>();
+
+    /** Create a directory persisted in the given file, loading its content if it exists.
+     *  An unreadable file is discarded, the next refresh of each card rebuilds its entries.
+     */
+    public CredentialDirectory(File file) throws IOException {
+        this.file = file;
+        File tmp = tempFile();
+        if (!file.exists() && tmp.exists()) {
+            // A save was interrupted before the new file was moved into place, use it if complete
+            if (tryLoad(tmp) && !tmp.renameTo(file)) {
+                throw new IOException("Unable to recover directory file: " + file);
+            }
+        } else if (file.exists()) {
+            tryLoad(file);
+        }
+    }
+
+    /** Read the credentials of an opened token and update its part of the directory
+     */
+    public void refresh(HardwareToken token, long timestamp) throws IOException {
+        update(token.getId(), token.getTokens(timestamp));
+    }
+
+    /** Replace the credentials known for a card. Only entries that were added, removed or
+     *  changed are reindexed, and the file is only rewritten if anything changed.
+     */
+    public synchronized void update(byte[] cardId, List<TokenMeta> tokens) throws IOException {
+        if (cardId == null) {
+            throw new IllegalArgumentException("Card id must not be null, was the token opened?");
+        }
+        String key = toHex(cardId);
+        Map<String, Entry> previous = byCard.get(key);
+        if (previous == null) {
+            previous = Collections.emptyMap();
+        }
+
+        // A card cannot hold a label twice, if the list does the last one wins
+        Map<String, TokenMeta> unique = new LinkedHashMap<String, TokenMeta>();
+        for (TokenMeta token : tokens) {
+            unique.put(token.getLabel(), token);
+        }
+
+        Map<String, Entry> current = new HashMap<String, Entry>();
+        boolean changed = false;
+        for (TokenMeta token : unique.values()) {
+            Entry old = previous.get(token.getLabel());
+            if (old != null && sameToken(old.token, token)) {
+                current.put(token.getLabel(), old);
+            } else {
+                if (old != null) {
+                    unindex(old);
+                }
+                Entry entry = new Entry(cardId.clone(), token);
+                index(entry);
+                current.put(token.getLabel(), entry);
+                changed = true;
+            }
+        }
+        for (Entry old : previous.values()) {
+            if (!current.containsKey(old.token.getLabel())) {
+                unindex(old);
+                changed = true;
+            }
+        }
+
+        if (changed) {
+            if (current.isEmpty()) {
+                byCard.remove(key);
+            } else {
+                byCard.put(key, current);
+            }
+            save();
+        }
+    }
+
+    /** Remove a card and all its credentials from the directory
+     */
+    public synchronized void forget(byte[] cardId) throws IOException {
+        Map<String, Entry> previous = byCard.remove(toHex(cardId));
+        if (previous != null) {
+            for (Entry old : previous.values()) {
+                unindex(old);
+            }
+            save();
+        }
+    }
+
+    /** Return the entries with the given label on all known cards
+     */
+    public synchronized List<Entry> findByLabel(String label) {
+        return lookup(byLabel, label);
+    }
+
+    /** Return the entries with the given issuer on all known cards
+     */
+    public synchronized List<Entry> findByIssuer(String issuer) {
+        return lookup(byIssuer, issuer);
+    }
+
+    /** Return the entries stored on the given card
+     */
+    public synchronized List<Entry> getEntries(byte[] cardId) {
+        Map<String, Entry> entries = byCard.get(toHex(cardId));
+        if (entries == null) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<Entry>(entries.values());
+    }
+
+    private static List<Entry> lookup(Map<String, List<Entry>> index, String key) {
+        List<Entry> entries = index.get(key);
+        if (entries == null) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<Entry>(entries);
+    }
+
+    private void index(Entry entry) {
+        add(byLabel, entry.token.getLabel(), entry);
+        if (entry.issuer != null) {
+            add(byIssuer, entry.issuer, entry);
+        }
+    }
+
+    private void unindex(Entry entry) {
+        remove(byLabel, entry.token.getLabel(), entry);
+        if (entry.issuer != null) {
+            remove(byIssuer, entry.issuer, entry);
+        }
+    }
+
+    private static void add(Map<String, List<Entry>> index, String key, Entry entry) {
+        List<Entry> entries = index.get(key);
+        if (entries == null) {
+            entries = new ArrayList<Entry>(1);
+            index.put(key, entries);
+        }
+        entries.add(entry);
+    }
+
+    private static void remove(Map<String, List<Entry>> index, String key, Entry entry) {
+        List<Entry> entries = index.get(key);
+        if (entries != null) {
+            entries.remove(entry);
+            if (entries.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+
+    private File tempFile() {
+        return new File(file.getPath() + ".tmp");
+    }
+
+    private boolean tryLoad(File source) {
+        try {
+            load(source);
+            return true;
+        } catch (IOException e) {
+            byCard.clear();
+            byLabel.clear();
+            byIssuer.clear();
+            source.delete();
+            return false;
+        }
+    }
+
+    private void load(File source) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(source)));
+        try {
+            int version = in.readInt();
+            if (version != FORMAT_VERSION) {
+                throw new IOException("Unsupported directory format: " + version);
+            }
+            int cards = in.readInt();
+            for (int i = 0; i < cards; i++) {
+                byte[] cardId = new byte[in.readUnsignedByte()];
+                in.readFully(cardId);
+                int count = in.readInt();
+                Map<String, Entry> entries = new HashMap<String, Entry>();
+                for (int j = 0; j < count; j++) {
+                    String label = in.readUTF();
+                    int digits = in.readUnsignedByte();
+                    TokenMeta.Type type = TokenMeta.Type.values()[in.readUnsignedByte()];
+                    TokenMeta.Algorithm algorithm = TokenMeta.Algorithm.values()[in.readUnsignedByte()];
+                    Entry entry = new Entry(cardId, new TokenMeta(label, digits, type, algorithm));
+                    index(entry);
+                    entries.put(label, entry);
+                }
+                byCard.put(toHex(cardId), entries);
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Corrupt directory file: " + source);
+        } finally {
+            in.close();
+        }
+    }
+
+    private void save() throws IOException {
+        File tmp = tempFile();
+        FileOutputStream stream = new FileOutputStream(tmp);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+        try {
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(byCard.size());
+            for (Map<String, Entry> entries : byCard.values()) {
+                // Every card in the directory has at least one entry to take the id from
+                byte[] cardId = entries.values().iterator().next().cardId;
+                out.writeByte(cardId.length);
+                out.write(cardId);
+                out.writeInt(entries.size());
+                for (Entry entry : entries.values()) {
+                    out.writeUTF(entry.token.getLabel());
+                    out.writeByte(entry.token.getDigits());
+                    out.writeByte(entry.token.getType().ordinal());
+                    out.writeByte(entry.token.getAlgorithm().ordinal());
+                }
+            }
+            out.flush();
+            stream.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            // Some platforms cannot rename onto an existing file, the constructor recovers
+            // from the temporary file should the process die in between
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Unable to write directory file: " + file);
+            }
+        }
+    }
+
+    private static boolean sameToken(TokenMeta a, TokenMeta b) {
+        return a.getDigits() == b.getDigits() && a.getType() == b.getType()
+            && a.getAlgorithm() == b.getAlgorithm();
+    }
+
+    private static String parseIssuer(String label) {
+        int separator = label.indexOf(':');
+        return separator > 0 ? label.substring(0, separator) : null;
+    }
+
+    private static String toHex(byte[] data) {
+        StringBuilder sb = new StringBuilder(data.length * 2);
+        for (byte b : data) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
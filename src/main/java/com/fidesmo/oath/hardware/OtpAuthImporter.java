@@ -0,0 +1,483 @@
+/*
+ * Copyright (c) 2014, Fidesmo AB.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF
+ * THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.fidesmo.oath.hardware;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/** Streaming importer for files of otpauth:// URIs, one per line.
+ *
+ *  Lines are parsed in place from a reusable buffer, so inputs of any size are processed in
+ *  constant memory. Entries that could not be stored on the applet are rejected before they
+ *  reach {@link HardwareToken#storeCode}. Blank lines and lines starting with '#' are ignored.
+ */
+public class OtpAuthImporter {
+    public static final int MAX_LABEL_LENGTH = 64;
+    public static final int MAX_KEY_LENGTH = 64;
+    public static final int MAX_LINE_LENGTH = 8192;
+    public static final int DEFAULT_DIGITS = 6;
+    public static final int DEFAULT_PERIOD = 30;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String SCHEME = "otpauth://";
+
+    public static class Entry {
+        private final TokenMeta token;
+        private final byte[] key;
+        private final String issuer;
+        private final String account;
+        private final int counterOrPeriod;
+
+        private Entry(TokenMeta token, byte[] key, String issuer, String account, int counterOrPeriod) {
+            this.token = token;
+            this.key = key;
+            this.issuer = issuer;
+            this.account = account;
+            this.counterOrPeriod = counterOrPeriod;
+        }
+
+        /** Token to store, labelled "issuer:account" or just "account" without issuer
+         */
+        public TokenMeta getToken() {
+            return token;
+        }
+
+        public byte[] getKey() {
+            return key;
+        }
+
+        public String getIssuer() {
+            return issuer;
+        }
+
+        public String getAccount() {
+            return account;
+        }
+
+        /** Initial counter for HOTP or period in seconds for TOTP, as taken by
+         *  {@link HardwareToken#storeCode}. The period is always
+         *  {@link OtpAuthImporter#DEFAULT_PERIOD}, the only one the applet supports.
+         */
+        public int getCounterOrPeriod() {
+            return counterOrPeriod;
+        }
+    }
+
+    /** Receives the result of each non-blank line of the input
+     */
+    public interface Handler {
+        public void onEntry(Entry entry) throws IOException;
+
+        public void onRejected(int line, String reason) throws IOException;
+    }
+
+    private final Reader reader;
+    // Room for a line of MAX_LINE_LENGTH characters and its "\r\n" terminator
+    private final char[] buf = new char[MAX_LINE_LENGTH + 2];
+    private final byte[] scratch = new byte[MAX_LINE_LENGTH * 3];
+    private final CharsetDecoder utf8 = UTF8.newDecoder()
+        .onMalformedInput(CodingErrorAction.REPORT)
+        .onUnmappableCharacter(CodingErrorAction.REPORT);
+    private int pos;
+    private int limit;
+    private int line;
+    private String reason;
+
+    public OtpAuthImporter(Reader reader) {
+        this.reader = reader;
+    }
+
+    /** Read the whole input, passing every entry to the handler
+     *  @return the number of accepted entries
+     */
+    public int importAll(Handler handler) throws IOException {
+        int accepted = 0;
+        boolean skipping = false;
+        while (true) {
+            int newline = -1;
+            for (int i = pos; i < limit; i++) {
+                if (buf[i] == '\n') {
+                    newline = i;
+                    break;
+                }
+            }
+
+            if (newline < 0) {
+                if (pos > 0) {
+                    System.arraycopy(buf, pos, buf, 0, limit - pos);
+                    limit -= pos;
+                    pos = 0;
+                }
+                if (limit == buf.length) {
+                    // Overlong line, drop what was buffered and skip to the next newline
+                    if (!skipping) {
+                        handler.onRejected(line + 1, "Line longer than " + MAX_LINE_LENGTH + " characters");
+                        skipping = true;
+                    }
+                    limit = 0;
+                }
+                int read = reader.read(buf, limit, buf.length - limit);
+                if (read > 0) {
+                    limit += read;
+                    continue;
+                }
+                if (limit == 0) {
+                    if (skipping) {
+                        line++;
+                    }
+                    return accepted;
+                }
+                newline = limit;
+            }
+
+            line++;
+            int start = pos;
+            pos = Math.min(newline + 1, limit);
+            if (skipping) {
+                skipping = false;
+                continue;
+            }
+
+            int end = newline;
+            if (end > start && buf[end - 1] == '\r') {
+                end--;
+            }
+            if (end - start > MAX_LINE_LENGTH) {
+                handler.onRejected(line, "Line longer than " + MAX_LINE_LENGTH + " characters");
+                continue;
+            }
+            while (start < end && Character.isWhitespace(buf[start])) {
+                start++;
+            }
+            while (end > start && Character.isWhitespace(buf[end - 1])) {
+                end--;
+            }
+            if (start == end || buf[start] == '#') {
+                continue;
+            }
+
+            Entry entry = parse(start, end);
+            if (entry != null) {
+                handler.onEntry(entry);
+                accepted++;
+            } else {
+                handler.onRejected(line, reason);
+            }
+        }
+    }
+
+    private Entry reject(String reason) {
+        this.reason = reason;
+        return null;
+    }
+
+    private Entry parse(int start, int end) {
+        if (!startsWith(start, end, SCHEME)) {
+            return reject("Not an otpauth URI");
+        }
+        int offset = start + SCHEME.length();
+
+        int slash = indexOf('/', offset, end);
+        if (slash < 0) {
+            return reject("Missing label");
+        }
+        TokenMeta.Type type;
+        if (startsWith(offset, slash, "totp") && slash - offset == 4) {
+            type = TokenMeta.Type.TOTP;
+        } else if (startsWith(offset, slash, "hotp") && slash - offset == 4) {
+            type = TokenMeta.Type.HOTP;
+        } else {
+            return reject("Unsupported type: " + new String(buf, offset, slash - offset));
+        }
+
+        int query = indexOf('?', slash + 1, end);
+        int labelEnd = query < 0 ? end : query;
+        String label = decode(slash + 1, labelEnd, false);
+        if (label == null || label.length() == 0) {
+            return reject("Invalid label");
+        }
+        String issuer = null;
+        String account = label;
+        int colon = label.indexOf(':');
+        if (colon >= 0) {
+            issuer = label.substring(0, colon).trim();
+            account = label.substring(colon + 1).trim();
+        }
+
+        byte[] key = null;
+        int digits = DEFAULT_DIGITS;
+        int period = DEFAULT_PERIOD;
+        long counter = 0;
+        TokenMeta.Algorithm algorithm = TokenMeta.Algorithm.SHA1;
+
+        int param = labelEnd + 1;
+        while (param < end) {
+            int paramEnd = indexOf('&', param, end);
+            if (paramEnd < 0) {
+                paramEnd = end;
+            }
+            int equals = indexOf('=', param, paramEnd);
+            if (equals > param) {
+                int value = equals + 1;
+                if (isName(param, equals, "secret")) {
+                    key = decodeBase32(value, paramEnd);
+                    if (key == null) {
+                        return reject("Invalid base32 secret");
+                    }
+                } else if (isName(param, equals, "issuer")) {
+                    issuer = decode(value, paramEnd, true);
+                    if (issuer == null) {
+                        return reject("Invalid issuer");
+                    }
+                } else if (isName(param, equals, "digits")) {
+                    digits = (int) parseNumber(value, paramEnd, Integer.MAX_VALUE);
+                } else if (isName(param, equals, "period")) {
+                    period = (int) parseNumber(value, paramEnd, Integer.MAX_VALUE);
+                    if (period <= 0) {
+                        return reject("Invalid period");
+                    }
+                } else if (isName(param, equals, "counter")) {
+                    counter = parseNumber(value, paramEnd, Integer.MAX_VALUE);
+                    if (counter < 0) {
+                        return reject("Counter must be between 0 and " + Integer.MAX_VALUE);
+                    }
+                } else if (isName(param, equals, "algorithm")) {
+                    if (equalsIgnoreCase(value, paramEnd, "SHA1")) {
+                        algorithm = TokenMeta.Algorithm.SHA1;
+                    } else if (equalsIgnoreCase(value, paramEnd, "SHA256")) {
+                        algorithm = TokenMeta.Algorithm.SHA256;
+                    } else {
+                        return reject("Unsupported algorithm: " + new String(buf, value, paramEnd - value));
+                    }
+                }
+            }
+            param = paramEnd + 1;
+        }
+
+        if (key == null || key.length == 0) {
+            return reject("Missing secret");
+        }
+        if (key.length > MAX_KEY_LENGTH) {
+            return reject("Key longer than " + MAX_KEY_LENGTH + " bytes");
+        }
+        if (digits < 6 || digits > 8) {
+            return reject("Unsupported number of digits: " + digits);
+        }
+        if (type == TokenMeta.Type.TOTP && period != DEFAULT_PERIOD) {
+            // The applet has no period field, codes are always calculated for 30 second steps
+            return reject("Unsupported period: " + period);
+        }
+        if (issuer != null && issuer.length() == 0) {
+            issuer = null;
+        }
+        if (account.length() == 0) {
+            return reject("Missing account name");
+        }
+
+        String name = issuer == null ? account : issuer + ":" + account;
+        if (name.getBytes(UTF8).length > MAX_LABEL_LENGTH) {
+            return reject("Label longer than " + MAX_LABEL_LENGTH + " bytes");
+        }
+
+        TokenMeta token = new TokenMeta(name, digits, type, algorithm);
+        return new Entry(token, key, issuer, account, type == TokenMeta.Type.HOTP ? (int) counter : period);
+    }
+
+    private boolean startsWith(int start, int end, String prefix) {
+        if (end - start < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (Character.toLowerCase(buf[start + i]) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isName(int start, int end, String name) {
+        return end - start == name.length() && startsWith(start, end, name);
+    }
+
+    private boolean equalsIgnoreCase(int start, int end, String value) {
+        if (end - start != value.length()) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (Character.toUpperCase(buf[start + i]) != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int indexOf(char c, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (buf[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** Parse a decimal number, returning -1 if invalid or larger than max
+     */
+    private long parseNumber(int start, int end, long max) {
+        if (start == end) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            char c = buf[i];
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+            if (value > max) {
+                return -1;
+            }
+        }
+        return value;
+    }
+
+    /** Percent-decode a UTF-8 URI component, returning null if malformed
+     */
+    private String decode(int start, int end, boolean plusIsSpace) {
+        int length = 0;
+        for (int i = start; i < end; i++) {
+            char c = buf[i];
+            if (c == '%') {
+                int escaped = unescape(i, end);
+                if (escaped < 0) {
+                    return null;
+                }
+                scratch[length++] = (byte) escaped;
+                i += 2;
+            } else if (c == '+' && plusIsSpace) {
+                scratch[length++] = ' ';
+            } else if (c < 0x80) {
+                scratch[length++] = (byte) c;
+            } else {
+                // Raw non-ASCII characters are not valid in a URI, but tolerate them. The whole
+                // run is encoded at once so surrogate pairs stay intact.
+                int run = i + 1;
+                while (run < end && buf[run] >= 0x80) {
+                    run++;
+                }
+                byte[] encoded = new String(buf, i, run - i).getBytes(UTF8);
+                System.arraycopy(encoded, 0, scratch, length, encoded.length);
+                length += encoded.length;
+                i = run - 1;
+            }
+        }
+        try {
+            return utf8.decode(ByteBuffer.wrap(scratch, 0, length)).toString();
+        } catch (CharacterCodingException e) {
+            return null;
+        }
+    }
+
+    /** Return the byte of the percent escape at offset, or -1 if malformed
+     */
+    private int unescape(int offset, int end) {
+        if (offset + 2 >= end) {
+            return -1;
+        }
+        int high = Character.digit(buf[offset + 1], 16);
+        int low = Character.digit(buf[offset + 2], 16);
+        if (high < 0 || low < 0) {
+            return -1;
+        }
+        return (high << 4) | low;
+    }
+
+    /** Decode an RFC 4648 base32 value, returning null if malformed. Padding, spaces and
+     *  lower case letters are accepted, also when padding and spaces are percent-encoded.
+     */
+    private byte[] decodeBase32(int start, int end) {
+        int symbols = 0;
+        int bits = 0;
+        int bitCount = 0;
+        int length = 0;
+        boolean padding = false;
+        for (int i = start; i < end; i++) {
+            char c = buf[i];
+            if (c == '%') {
+                c = (char) unescape(i, end);
+                i += 2;
+                if (c != '=' && c != ' ') {
+                    return null;
+                }
+            }
+
+            int value;
+            if (c >= 'A' && c <= 'Z') {
+                value = c - 'A';
+            } else if (c >= 'a' && c <= 'z') {
+                value = c - 'a';
+            } else if (c >= '2' && c <= '7') {
+                value = c - '2' + 26;
+            } else if (c == ' ') {
+                continue;
+            } else if (c == '=') {
+                padding = true;
+                continue;
+            } else {
+                return null;
+            }
+            if (padding) {
+                return null;
+            }
+
+            symbols++;
+            bits = (bits << 5) | value;
+            bitCount += 5;
+            if (bitCount >= 8) {
+                bitCount -= 8;
+                scratch[length++] = (byte) (bits >> bitCount);
+            }
+        }
+
+        // A trailing group of 1, 3 or 6 symbols or non-zero leftover bits cannot come from an encoder
+        int trailing = symbols % 8;
+        if (trailing == 1 || trailing == 3 || trailing == 6 || (bits & ((1 << bitCount) - 1)) != 0) {
+            return null;
+        }
+        byte[] key = new byte[length];
+        System.arraycopy(scratch, 0, key, 0, length);
+        return key;
+    }
+}
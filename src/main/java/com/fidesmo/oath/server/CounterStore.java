@@ -0,0 +1,264 @@
+/*
+ * Copyright (c) 2014, Fidesmo AB.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF
+ * THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.fidesmo.oath.server;
+
+import com.yubico.yubioath.exc.StorageFullException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/** Lock-striped store of HOTP counters and last accepted TOTP time steps, backed by a
+ *  memory-mapped file of fixed size records following a header holding the capacity.
+ *
+ *  Every credential id hashes to one stripe. Callers must hold the lock returned by
+ *  {@link #getLock(String)} around any read-modify-write sequence for that id.
+ */
+public class CounterStore {
+    public static final int DEFAULT_STRIPES = 64;
+    public static final int MAX_ID_LENGTH = 128;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    //HEADER  MAGIC VERSION CAPACITY
+    //OFFSET  0     4       8
+    private static final int MAGIC = 0x4f415448;
+    private static final int VERSION = 1;
+    private static final int OFFSET_VERSION = 4;
+    private static final int OFFSET_CAPACITY = 8;
+    private static final int HEADER_SIZE = 16;
+
+    //RECORD  IDLEN ID...        COUNTER  STEP
+    //OFFSET  0     2            136      144
+    private static final int OFFSET_ID_LENGTH = 0;
+    private static final int OFFSET_ID = 2;
+    private static final int OFFSET_COUNTER = 136;
+    private static final int OFFSET_STEP = 144;
+    private static final int RECORD_SIZE = 152;
+
+    private static final class Stripe {
+        final ReentrantLock lock = new ReentrantLock();
+        final Map<String, Integer> slots = new HashMap<String, Integer>();
+    }
+
+    private final RandomAccessFile file;
+    private final FileLock lock;
+    private final MappedByteBuffer buffer;
+    private final Stripe[] stripes;
+    private final int capacity;
+    private final AtomicInteger nextSlot = new AtomicInteger();
+
+    public CounterStore(File path, int capacity) throws IOException {
+        this(path, capacity, DEFAULT_STRIPES);
+    }
+
+    /** Open or create the store. An existing store can be reopened with a larger capacity,
+     *  but not with a smaller one. The file is locked until {@link #close()}.
+     *  @param path file holding the records, created if missing
+     *  @param capacity maximum number of credentials
+     *  @param stripes number of lock stripes, rounded up to a power of two
+     */
+    public CounterStore(File path, int capacity, int stripes) throws IOException {
+        if (capacity <= 0 || stripes <= 0) {
+            throw new IllegalArgumentException("Capacity and stripes must be positive");
+        }
+        if (HEADER_SIZE + (long) capacity * RECORD_SIZE > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Capacity too large: " + capacity);
+        }
+        int size = 1;
+        while (size < stripes) {
+            size <<= 1;
+        }
+        this.stripes = new Stripe[size];
+        for (int i = 0; i < size; i++) {
+            this.stripes[i] = new Stripe();
+        }
+
+        this.capacity = capacity;
+        this.file = new RandomAccessFile(path, "rw");
+        try {
+            // Each instance allocates slots on its own, so only one may use the file at a time
+            this.lock = lockFile(path);
+            checkHeader(capacity);
+            this.buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * RECORD_SIZE);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(OFFSET_VERSION, VERSION);
+        buffer.putInt(OFFSET_CAPACITY, capacity);
+        load();
+    }
+
+    private FileLock lockFile(File path) throws IOException {
+        FileLock lock;
+        try {
+            lock = file.getChannel().tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        }
+        if (lock == null) {
+            throw new IOException("Counter store is already open: " + path);
+        }
+        return lock;
+    }
+
+    private void checkHeader(int capacity) throws IOException {
+        long length = file.length();
+        if (length == 0) {
+            return;
+        }
+        if (length < HEADER_SIZE || file.readInt() != MAGIC) {
+            throw new IOException("Not a counter store file");
+        }
+        int version = file.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported counter store version: " + version);
+        }
+        int stored = file.readInt();
+        if (stored > capacity || length > HEADER_SIZE + (long) capacity * RECORD_SIZE) {
+            throw new IOException("Counter store holds " + stored + " records, capacity " + capacity + " is too small");
+        }
+    }
+
+    private static int recordOffset(int slot) {
+        return HEADER_SIZE + slot * RECORD_SIZE;
+    }
+
+    private void load() {
+        int used = 0;
+        byte[] idBytes = new byte[MAX_ID_LENGTH];
+        for (int slot = 0; slot < capacity; slot++) {
+            int base = recordOffset(slot);
+            int length = buffer.getShort(base + OFFSET_ID_LENGTH);
+            if (length <= 0 || length > MAX_ID_LENGTH) {
+                continue;
+            }
+            for (int i = 0; i < length; i++) {
+                idBytes[i] = buffer.get(base + OFFSET_ID + i);
+            }
+            String id = new String(idBytes, 0, length, UTF8);
+            stripeFor(id).slots.put(id, slot);
+            used = slot + 1;
+        }
+        nextSlot.set(used);
+    }
+
+    private Stripe stripeFor(String id) {
+        int h = id.hashCode();
+        h ^= (h >>> 16);
+        return stripes[h & (stripes.length - 1)];
+    }
+
+    /** Lock guarding all records whose id falls into the same stripe as the given one
+     */
+    public Lock getLock(String id) {
+        return stripeFor(id).lock;
+    }
+
+    /** Return the next expected HOTP counter, 0 for unknown ids
+     */
+    public long getCounter(String id) {
+        Integer slot = stripeFor(id).slots.get(id);
+        return slot == null ? 0 : buffer.getLong(recordOffset(slot) + OFFSET_COUNTER);
+    }
+
+    public void setCounter(String id, long counter) throws IOException {
+        buffer.putLong(recordOffset(slotFor(id)) + OFFSET_COUNTER, counter);
+    }
+
+    /** Return the last accepted TOTP time step, -1 if none has been accepted yet
+     */
+    public long getLastStep(String id) {
+        Integer slot = stripeFor(id).slots.get(id);
+        return slot == null ? -1 : buffer.getLong(recordOffset(slot) + OFFSET_STEP);
+    }
+
+    public void setLastStep(String id, long step) throws IOException {
+        buffer.putLong(recordOffset(slotFor(id)) + OFFSET_STEP, step);
+    }
+
+    private int slotFor(String id) throws IOException {
+        Stripe stripe = stripeFor(id);
+        Integer slot = stripe.slots.get(id);
+        if (slot != null) {
+            return slot;
+        }
+
+        byte[] idBytes = id.getBytes(UTF8);
+        if (idBytes.length == 0 || idBytes.length > MAX_ID_LENGTH) {
+            throw new IOException("Invalid credential id length: " + idBytes.length);
+        }
+        int allocated;
+        do {
+            allocated = nextSlot.get();
+            if (allocated >= capacity) {
+                throw new StorageFullException("No more room for OATH counters!");
+            }
+        } while (!nextSlot.compareAndSet(allocated, allocated + 1));
+
+        // The id length is written last so a partially written record is skipped on load
+        int base = recordOffset(allocated);
+        for (int i = 0; i < idBytes.length; i++) {
+            buffer.put(base + OFFSET_ID + i, idBytes[i]);
+        }
+        buffer.putLong(base + OFFSET_COUNTER, 0);
+        buffer.putLong(base + OFFSET_STEP, -1);
+        buffer.putShort(base + OFFSET_ID_LENGTH, (short) idBytes.length);
+
+        stripe.slots.put(id, allocated);
+        return allocated;
+    }
+
+    /** Force pending record updates to the underlying file
+     */
+    public void flush() {
+        buffer.force();
+    }
+
+    /** Close must be called before the object is destroyed
+     */
+    public void close() throws IOException {
+        flush();
+        lock.release();
+        file.close();
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (c) 2014, Fidesmo AB.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF
+ * THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.fidesmo.oath.server;
+
+import com.fidesmo.oath.hardware.TokenMeta;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.locks.Lock;
+
+/** Verifies HOTP and TOTP codes produced by a hardware token against the shared secret.
+ *
+ *  Labels are only unique on a single card, so every credential is identified by an id chosen
+ *  by the caller, e.g. combining user and label. The {@link TokenMeta} only provides type, digits
+ *  and algorithm. HOTP counters and the last accepted TOTP time step are kept per id in a
+ *  {@link CounterStore}, so a code is accepted at most once.
+ */
+public class OathVerifier {
+    public static final int DEFAULT_PERIOD = 30;
+
+    private static final int[] MOD = {1, 10, 100, 1000, 10000, 100000, 1000000, 10000000, 100000000};
+
+    private static final ThreadLocal<Mac[]> MACS = new ThreadLocal<Mac[]>() {
+        @Override
+        protected Mac[] initialValue() {
+            return new Mac[TokenMeta.Algorithm.values().length];
+        }
+    };
+
+    private final CounterStore store;
+    private final int hotpLookAhead;
+    private final int totpLookBehind;
+    private final int totpLookAhead;
+    private final int resyncWindow;
+
+    /** @param hotpLookAhead number of HOTP counter values ahead of the stored one that are accepted
+     *  @param totpLookBehind number of TOTP time steps before the current one that are accepted
+     *  @param totpLookAhead number of TOTP time steps after the current one that are accepted
+     *  @param resyncWindow number of HOTP counter values searched by {@link #resyncHotp}
+     */
+    public OathVerifier(CounterStore store, int hotpLookAhead, int totpLookBehind, int totpLookAhead, int resyncWindow) {
+        if (hotpLookAhead < 0 || totpLookBehind < 0 || totpLookAhead < 0 || resyncWindow < 0) {
+            throw new IllegalArgumentException("Windows must not be negative");
+        }
+        this.store = store;
+        this.hotpLookAhead = hotpLookAhead;
+        this.totpLookBehind = totpLookBehind;
+        this.totpLookAhead = totpLookAhead;
+        this.resyncWindow = resyncWindow;
+    }
+
+    /** Verify a HOTP code and advance the stored counter past the matching value
+     */
+    public boolean verifyHotp(String credentialId, TokenMeta token, byte[] key, String code) throws IOException {
+        int expected = parseCode(code, token.getDigits());
+        if (expected < 0) {
+            return false;
+        }
+
+        Mac mac = initMac(token.getAlgorithm(), key);
+        Lock lock = store.getLock(credentialId);
+        lock.lock();
+        try {
+            long counter = store.getCounter(credentialId);
+            for (long c = counter; c <= counter + hotpLookAhead; c++) {
+                if (generate(mac, c, token.getDigits()) == expected) {
+                    store.setCounter(credentialId, c + 1);
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Resynchronize a HOTP counter that has drifted beyond the look-ahead window, using two
+     *  consecutive codes from the token.
+     */
+    public boolean resyncHotp(String credentialId, TokenMeta token, byte[] key, String first, String second) throws IOException {
+        int expectedFirst = parseCode(first, token.getDigits());
+        int expectedSecond = parseCode(second, token.getDigits());
+        if (expectedFirst < 0 || expectedSecond < 0) {
+            return false;
+        }
+
+        Mac mac = initMac(token.getAlgorithm(), key);
+        Lock lock = store.getLock(credentialId);
+        lock.lock();
+        try {
+            long counter = store.getCounter(credentialId);
+            for (long c = counter; c < counter + resyncWindow; c++) {
+                if (generate(mac, c, token.getDigits()) == expectedFirst
+                    && generate(mac, c + 1, token.getDigits()) == expectedSecond) {
+                    store.setCounter(credentialId, c + 2);
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Verify a TOTP code using the default period of 30 seconds
+     *  @param time seconds since the epoch
+     */
+    public boolean verifyTotp(String credentialId, TokenMeta token, byte[] key, String code, long time) throws IOException {
+        return verifyTotp(credentialId, token, key, code, time, DEFAULT_PERIOD);
+    }
+
+    /** Verify a TOTP code, rejecting time steps at or before the last accepted one
+     *  @param time seconds since the epoch
+     *  @param period lifeperiod of a single code in seconds
+     */
+    public boolean verifyTotp(String credentialId, TokenMeta token, byte[] key, String code, long time, int period) throws IOException {
+        if (period <= 0) {
+            throw new IllegalArgumentException("Period must be positive");
+        }
+        int expected = parseCode(code, token.getDigits());
+        if (expected < 0) {
+            return false;
+        }
+
+        long step = time / period;
+        Mac mac = initMac(token.getAlgorithm(), key);
+        Lock lock = store.getLock(credentialId);
+        lock.lock();
+        try {
+            long last = store.getLastStep(credentialId);
+            for (long s = Math.max(step - totpLookBehind, last + 1); s <= step + totpLookAhead; s++) {
+                if (generate(mac, s, token.getDigits()) == expected) {
+                    store.setLastStep(credentialId, s);
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static Mac initMac(TokenMeta.Algorithm algorithm, byte[] key) throws IOException {
+        if (key == null || key.length == 0) {
+            throw new IOException("Key must not be empty");
+        }
+        String name = null;
+        switch (algorithm) {
+        case SHA1:
+            name = "HmacSHA1";
+            break;
+        case SHA256:
+            name = "HmacSHA256";
+            break;
+        }
+
+        Mac[] macs = MACS.get();
+        try {
+            Mac mac = macs[algorithm.ordinal()];
+            if (mac == null) {
+                mac = Mac.getInstance(name);
+                macs[algorithm.ordinal()] = mac;
+            }
+            mac.init(new SecretKeySpec(key, name));
+            return mac;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("Unsupported algorithm: " + name);
+        } catch (InvalidKeyException e) {
+            throw new IOException("Invalid key for " + name);
+        }
+    }
+
+    private static int generate(Mac mac, long counter, int digits) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            mac.update((byte) (counter >>> shift));
+        }
+        byte[] hash = mac.doFinal();
+        int offset = hash[hash.length - 1] & 0x0f;
+        int code = ((hash[offset] & 0x7f) << 24) | ((hash[offset + 1] & 0xff) << 16)
+            | ((hash[offset + 2] & 0xff) << 8) | (hash[offset + 3] & 0xff);
+        return code % MOD[digits];
+    }
+
+    private static int parseCode(String code, int digits) {
+        if (code == null || digits <= 0 || digits >= MOD.length || code.length() != digits) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = 0; i < digits; i++) {
+            char c = code.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2014, Fidesmo AB.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF
+ * THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.fidesmo.oath.hardware;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CredentialDirectoryTest {
+    private static final byte[] CARD_A = {0x01, 0x02};
+    private static final byte[] CARD_B = {0x03};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static TokenMeta totp(String label) {
+        return new TokenMeta(label, 6, TokenMeta.Type.TOTP);
+    }
+
+    @Test
+    public void findsCardsByLabelAndIssuer() throws IOException {
+        CredentialDirectory directory = new CredentialDirectory(new File(folder.getRoot(), "directory"));
+        directory.update(CARD_A, Arrays.asList(totp("GitHub:me"), totp("plain")));
+        directory.update(CARD_B, Arrays.asList(totp("GitHub:work")));
+
+        assertEquals(2, directory.findByIssuer("GitHub").size());
+        List<CredentialDirectory.Entry> plain = directory.findByLabel("plain");
+        assertEquals(1, plain.size());
+        assertArrayEquals(CARD_A, plain.get(0).getCardId());
+        assertNull(plain.get(0).getIssuer());
+        assertEquals("GitHub", directory.findByLabel("GitHub:me").get(0).getIssuer());
+    }
+
+    @Test
+    public void reloadsFromFile() throws IOException {
+        File file = new File(folder.getRoot(), "directory");
+        CredentialDirectory directory = new CredentialDirectory(file);
+        directory.update(CARD_A, Arrays.asList(totp("GitHub:me"), new TokenMeta("hotp", 8, TokenMeta.Type.HOTP)));
+
+        directory = new CredentialDirectory(file);
+        assertEquals(2, directory.getEntries(CARD_A).size());
+        TokenMeta hotp = directory.findByLabel("hotp").get(0).getToken();
+        assertEquals(8, hotp.getDigits());
+        assertEquals(TokenMeta.Type.HOTP, hotp.getType());
+    }
+
+    @Test
+    public void updateRemovesMissingEntries() throws IOException {
+        File file = new File(folder.getRoot(), "directory");
+        CredentialDirectory directory = new CredentialDirectory(file);
+        directory.update(CARD_A, Arrays.asList(totp("GitHub:me"), totp("plain")));
+        directory.update(CARD_A, Arrays.asList(totp("plain")));
+        assertTrue(directory.findByIssuer("GitHub").isEmpty());
+
+        directory.update(CARD_A, new ArrayList<TokenMeta>());
+        directory = new CredentialDirectory(file);
+        assertTrue(directory.getEntries(CARD_A).isEmpty());
+        assertTrue(directory.findByLabel("plain").isEmpty());
+    }
+
+    @Test
+    public void duplicateLabelsKeepLastEntry() throws IOException {
+        CredentialDirectory directory = new CredentialDirectory(new File(folder.getRoot(), "directory"));
+        directory.update(CARD_A, Arrays.asList(totp("x"), new TokenMeta("x", 8, TokenMeta.Type.HOTP)));
+
+        assertEquals(1, directory.getEntries(CARD_A).size());
+        assertEquals(1, directory.findByLabel("x").size());
+        assertEquals(TokenMeta.Type.HOTP, directory.findByLabel("x").get(0).getToken().getType());
+    }
+
+    @Test
+    public void recoversFromInterruptedSave() throws IOException {
+        File file = new File(folder.getRoot(), "directory");
+        File tmp = new File(folder.getRoot(), "directory.tmp");
+        CredentialDirectory directory = new CredentialDirectory(file);
+        directory.update(CARD_A, Arrays.asList(totp("plain")));
+        assertTrue(file.renameTo(tmp));
+
+        directory = new CredentialDirectory(file);
+        assertEquals(1, directory.findByLabel("plain").size());
+        assertTrue(file.exists());
+        assertFalse(tmp.exists());
+    }
+
+    @Test
+    public void discardsCorruptFile() throws IOException {
+        File file = new File(folder.getRoot(), "directory");
+        CredentialDirectory directory = new CredentialDirectory(file);
+        directory.update(CARD_A, Arrays.asList(totp("plain")));
+        RandomAccessFile truncate = new RandomAccessFile(file, "rw");
+        truncate.setLength(9);
+        truncate.close();
+
+        directory = new CredentialDirectory(file);
+        assertTrue(directory.getEntries(CARD_A).isEmpty());
+        assertFalse(file.exists());
+
+        directory.update(CARD_A, Arrays.asList(totp("plain")));
+        directory = new CredentialDirectory(file);
+        assertEquals(1, directory.findByLabel("plain").size());
+    }
+
+    @Test
+    public void discardsIncompleteTemporaryFile() throws IOException {
+        File file = new File(folder.getRoot(), "directory");
+        FileOutputStream out = new FileOutputStream(new File(folder.getRoot(), "directory.tmp"));
+        out.write(new byte[] {0, 0, 0, 1, 0, 0});
+        out.close();
+
+        CredentialDirectory directory = new CredentialDirectory(file);
+        assertTrue(directory.getEntries(CARD_A).isEmpty());
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2014, Fidesmo AB.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF
+ * THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.fidesmo.oath.hardware;
+
+import org.junit.Test;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class OtpAuthImporterTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static class Collector implements OtpAuthImporter.Handler {
+        final List<OtpAuthImporter.Entry> entries = new ArrayList<OtpAuthImporter.Entry>();
+        final List<String> rejected = new ArrayList<String>();
+
+        public void onEntry(OtpAuthImporter.Entry entry) {
+            entries.add(entry);
+        }
+
+        public void onRejected(int line, String reason) {
+            rejected.add(line + ": " + reason);
+        }
+    }
+
+    private static Collector importAll(String input) throws IOException {
+        Collector collector = new Collector();
+        int accepted = new OtpAuthImporter(new StringReader(input)).importAll(collector);
+        assertEquals(collector.entries.size(), accepted);
+        return collector;
+    }
+
+    private static OtpAuthImporter.Entry importOne(String uri) throws IOException {
+        Collector collector = importAll(uri);
+        assertEquals(collector.rejected.toString(), 1, collector.entries.size());
+        return collector.entries.get(0);
+    }
+
+    private static void assertRejected(String uri) throws IOException {
+        Collector collector = importAll(uri);
+        assertEquals(0, collector.entries.size());
+        assertEquals(1, collector.rejected.size());
+    }
+
+    @Test
+    public void mapsParametersOntoTokenMeta() throws IOException {
+        OtpAuthImporter.Entry entry = importOne("otpauth://totp/ACME%20Co:john@example.com?"
+            + "secret=GEZDGNBVGY3TQOJQGEZDGNBVGY3TQOJQ&issuer=ACME+Co&algorithm=SHA256&digits=8&period=30");
+        assertEquals("ACME Co:john@example.com", entry.getToken().getLabel());
+        assertEquals("ACME Co", entry.getIssuer());
+        assertEquals("john@example.com", entry.getAccount());
+        assertEquals(TokenMeta.Type.TOTP, entry.getToken().getType());
+        assertEquals(TokenMeta.Algorithm.SHA256, entry.getToken().getAlgorithm());
+        assertEquals(8, entry.getToken().getDigits());
+        assertEquals(30, entry.getCounterOrPeriod());
+        assertArrayEquals("12345678901234567890".getBytes(), entry.getKey());
+    }
+
+    @Test
+    public void usesDefaultsAndHotpCounter() throws IOException {
+        OtpAuthImporter.Entry entry = importOne("otpauth://hotp/plain?secret=JBSWY3DP&counter=42");
+        assertEquals("plain", entry.getToken().getLabel());
+        assertNull(entry.getIssuer());
+        assertEquals(TokenMeta.Algorithm.SHA1, entry.getToken().getAlgorithm());
+        assertEquals(6, entry.getToken().getDigits());
+        assertEquals(42, entry.getCounterOrPeriod());
+    }
+
+    @Test
+    public void decodesBase32Variants() throws IOException {
+        byte[] hello = "Hello".getBytes();
+        assertArrayEquals(hello, importOne("otpauth://totp/x?secret=jbswy3dp").getKey());
+        assertArrayEquals(hello, importOne("otpauth://totp/x?secret=JBSW Y3DP").getKey());
+        assertArrayEquals(hello, importOne("otpauth://totp/x?secret=JBSW%20Y3DP").getKey());
+        assertArrayEquals("1234567890".getBytes(), importOne("otpauth://totp/x?secret=GEZDGNBVGY3TQOJQ%3D%3D").getKey());
+        assertArrayEquals("a".getBytes(), importOne("otpauth://totp/x?secret=ME======").getKey());
+    }
+
+    @Test
+    public void rejectsMalformedBase32() throws IOException {
+        assertRejected("otpauth://totp/x?secret=ABC1");
+        assertRejected("otpauth://totp/x?secret=JBSW%41Y3DP");
+        assertRejected("otpauth://totp/x?secret=JBSW%2");
+        assertRejected("otpauth://totp/x?secret=ME%3DME");
+        assertRejected("otpauth://totp/x?secret=MFR");
+        assertRejected("otpauth://totp/x?secret=MF");
+    }
+
+    @Test
+    public void keepsSurrogatePairsInRawLabels() throws IOException {
+        byte[] expected = "\uD83D\uDE00".getBytes(UTF8);
+        assertArrayEquals(expected, importOne("otpauth://totp/\uD83D\uDE00?secret=JBSWY3DP").getToken().getLabel().getBytes(UTF8));
+        assertArrayEquals(expected, importOne("otpauth://totp/%F0%9F%98%80?secret=JBSWY3DP").getToken().getLabel().getBytes(UTF8));
+    }
+
+    @Test
+    public void rejectsMalformedUtf8() throws IOException {
+        assertRejected("otpauth://totp/%FF%FE?secret=JBSWY3DP");
+        assertRejected("otpauth://totp/x?secret=JBSWY3DP&issuer=%C3");
+    }
+
+    @Test
+    public void acceptsLinesOfMaximumLength() throws IOException {
+        StringBuilder uri = new StringBuilder("otpauth://totp/x?secret=JBSW");
+        while (uri.length() < OtpAuthImporter.MAX_LINE_LENGTH - 4) {
+            uri.append(' ');
+        }
+        uri.append("Y3DP");
+        assertEquals("x", importOne(uri + "\n").getToken().getLabel());
+        assertEquals("x", importOne(uri + "\r\n").getToken().getLabel());
+        assertRejected(" " + uri + "\n");
+    }
+
+    @Test
+    public void rejectsEntriesTheAppletCannotStore() throws IOException {
+        StringBuilder label = new StringBuilder();
+        for (int i = 0; i < OtpAuthImporter.MAX_LABEL_LENGTH + 1; i++) {
+            label.append('a');
+        }
+        assertRejected("otpauth://totp/" + label + "?secret=JBSWY3DP");
+        assertRejected("otpauth://totp/x?secret=" + label + label.substring(0, 39));
+        assertRejected("otpauth://totp/x?secret=JBSWY3DP&algorithm=SHA512");
+        assertRejected("otpauth://totp/x?secret=JBSWY3DP&digits=5");
+        assertRejected("otpauth://totp/x?secret=JBSWY3DP&period=0");
+        assertRejected("otpauth://totp/x?secret=JBSWY3DP&period=45");
+        assertRejected("otpauth://totp/x?secret=JBSWY3DP&period=60");
+        assertRejected("otpauth://totp/x");
+        assertRejected("otpauth://yotp/x?secret=JBSWY3DP");
+    }
+
+    @Test
+    public void streamsLinesAndReportsLineNumbers() throws IOException {
+        StringBuilder input = new StringBuilder("# comment\n\n");
+        input.append("otpauth://totp/first?secret=JBSWY3DP\r\n");
+        input.append("otpauth://totp/");
+        for (int i = 0; i < OtpAuthImporter.MAX_LINE_LENGTH + 100; i++) {
+            input.append('a');
+        }
+        input.append('\n');
+        input.append("not a uri\n");
+        input.append("otpauth://totp/last?secret=JBSWY3DP");
+
+        Collector collector = importAll(input.toString());
+        assertEquals(2, collector.entries.size());
+        assertEquals("first", collector.entries.get(0).getToken().getLabel());
+        assertEquals("last", collector.entries.get(1).getToken().getLabel());
+        assertEquals(2, collector.rejected.size());
+        assertEquals("4: Line longer than " + OtpAuthImporter.MAX_LINE_LENGTH + " characters", collector.rejected.get(0));
+        assertEquals("5: Not an otpauth URI", collector.rejected.get(1));
+    }
+}
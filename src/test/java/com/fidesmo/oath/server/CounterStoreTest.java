@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2014, Fidesmo AB.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF
+ * THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.fidesmo.oath.server;
+
+import com.yubico.yubioath.exc.StorageFullException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class CounterStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void unknownIdsHaveInitialValues() throws IOException {
+        CounterStore store = new CounterStore(folder.newFile("counters"), 4);
+        assertEquals(0, store.getCounter("user"));
+        assertEquals(-1, store.getLastStep("user"));
+        store.close();
+    }
+
+    @Test
+    public void reloadsRecordsFromFile() throws IOException {
+        File file = folder.newFile("counters");
+        CounterStore store = new CounterStore(file, 4);
+        store.setCounter("hotp", 11);
+        store.setLastStep("totp", 1);
+        store.close();
+
+        store = new CounterStore(file, 8);
+        assertEquals(11, store.getCounter("hotp"));
+        assertEquals(-1, store.getLastStep("hotp"));
+        assertEquals(0, store.getCounter("totp"));
+        assertEquals(1, store.getLastStep("totp"));
+        store.close();
+    }
+
+    @Test
+    public void refusesSmallerCapacity() throws IOException {
+        File file = folder.newFile("counters");
+        CounterStore store = new CounterStore(file, 8);
+        store.setCounter("hotp", 11);
+        store.close();
+
+        try {
+            new CounterStore(file, 4);
+            fail("Expected IOException");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void refusesSecondInstanceOnSameFile() throws IOException {
+        File file = folder.newFile("counters");
+        CounterStore store = new CounterStore(file, 4);
+        try {
+            new CounterStore(file, 4);
+            fail("Expected IOException");
+        } catch (IOException e) {
+            // expected
+        }
+        store.setCounter("alice", 5);
+        store.close();
+
+        store = new CounterStore(file, 4);
+        assertEquals(5, store.getCounter("alice"));
+        store.close();
+    }
+
+    @Test
+    public void refusesForeignFile() throws IOException {
+        File file = folder.newFile("counters");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[32]);
+        out.close();
+
+        try {
+            new CounterStore(file, 4);
+            fail("Expected IOException");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void failsWhenFull() throws IOException {
+        CounterStore store = new CounterStore(folder.newFile("counters"), 2);
+        store.setCounter("a", 1);
+        store.setCounter("b", 1);
+        for (int i = 0; i < 3; i++) {
+            try {
+                store.setCounter("c", 1);
+                fail("Expected StorageFullException");
+            } catch (StorageFullException e) {
+                // expected
+            }
+        }
+        store.setCounter("a", 2);
+        assertEquals(2, store.getCounter("a"));
+        store.close();
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2014, Fidesmo AB.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF
+ * THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.fidesmo.oath.server;
+
+import com.fidesmo.oath.hardware.TokenMeta;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OathVerifierTest {
+    private static final byte[] SHA1_KEY = "12345678901234567890".getBytes();
+    private static final byte[] SHA256_KEY = "12345678901234567890123456789012".getBytes();
+
+    // RFC 4226 appendix D, counters 0 to 9
+    private static final String[] HOTP_CODES = {
+        "755224", "287082", "359152", "969429", "338314",
+        "254676", "287922", "162583", "399871", "520489"
+    };
+
+    // RFC 6238 appendix B
+    private static final long[] TOTP_TIMES = {59L, 1111111109L, 1111111111L, 1234567890L, 2000000000L};
+    private static final String[] TOTP_SHA1_CODES = {"94287082", "07081804", "14050471", "89005924", "69279037"};
+    private static final String[] TOTP_SHA256_CODES = {"46119246", "68084774", "67062674", "91819424", "90698825"};
+
+    private static final TokenMeta HOTP = new TokenMeta("hotp", 6, TokenMeta.Type.HOTP);
+    private static final TokenMeta TOTP_SHA1 = new TokenMeta("totp", 8, TokenMeta.Type.TOTP, TokenMeta.Algorithm.SHA1);
+    private static final TokenMeta TOTP_SHA256 = new TokenMeta("totp", 8, TokenMeta.Type.TOTP, TokenMeta.Algorithm.SHA256);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private CounterStore store;
+    private OathVerifier verifier;
+
+    @Before
+    public void setUp() throws IOException {
+        store = new CounterStore(folder.newFile("counters"), 16);
+        verifier = new OathVerifier(store, 3, 1, 1, 20);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        store.close();
+    }
+
+    @Test
+    public void acceptsHotpVectorsInOrder() throws IOException {
+        for (String code : HOTP_CODES) {
+            assertTrue(code, verifier.verifyHotp("user", HOTP, SHA1_KEY, code));
+        }
+        assertEquals(10, store.getCounter("user"));
+    }
+
+    @Test
+    public void rejectsReplayedHotpCode() throws IOException {
+        assertTrue(verifier.verifyHotp("user", HOTP, SHA1_KEY, HOTP_CODES[0]));
+        assertFalse(verifier.verifyHotp("user", HOTP, SHA1_KEY, HOTP_CODES[0]));
+    }
+
+    @Test
+    public void hotpLookAheadSkipsCounters() throws IOException {
+        assertTrue(verifier.verifyHotp("user", HOTP, SHA1_KEY, HOTP_CODES[3]));
+        assertEquals(4, store.getCounter("user"));
+        assertFalse(verifier.verifyHotp("user", HOTP, SHA1_KEY, HOTP_CODES[2]));
+        assertFalse(verifier.verifyHotp("user", HOTP, SHA1_KEY, HOTP_CODES[8]));
+    }
+
+    @Test
+    public void resyncsDriftedHotpCounter() throws IOException {
+        assertFalse(verifier.verifyHotp("user", HOTP, SHA1_KEY, HOTP_CODES[8]));
+        assertFalse(verifier.resyncHotp("user", HOTP, SHA1_KEY, HOTP_CODES[8], HOTP_CODES[7]));
+        assertTrue(verifier.resyncHotp("user", HOTP, SHA1_KEY, HOTP_CODES[7], HOTP_CODES[8]));
+        assertEquals(9, store.getCounter("user"));
+        assertTrue(verifier.verifyHotp("user", HOTP, SHA1_KEY, HOTP_CODES[9]));
+    }
+
+    @Test
+    public void rejectsMalformedCodes() throws IOException {
+        assertFalse(verifier.verifyHotp("user", HOTP, SHA1_KEY, "75522"));
+        assertFalse(verifier.verifyHotp("user", HOTP, SHA1_KEY, "75522x"));
+        assertFalse(verifier.verifyHotp("user", HOTP, SHA1_KEY, null));
+        assertEquals(0, store.getCounter("user"));
+    }
+
+    @Test
+    public void acceptsTotpVectors() throws IOException {
+        for (int i = 0; i < TOTP_TIMES.length; i++) {
+            assertTrue(verifier.verifyTotp("sha1-" + i, TOTP_SHA1, SHA1_KEY, TOTP_SHA1_CODES[i], TOTP_TIMES[i]));
+            assertTrue(verifier.verifyTotp("sha256-" + i, TOTP_SHA256, SHA256_KEY, TOTP_SHA256_CODES[i], TOTP_TIMES[i]));
+        }
+    }
+
+    @Test
+    public void rejectsReplayedTotpCode() throws IOException {
+        assertTrue(verifier.verifyTotp("user", TOTP_SHA1, SHA1_KEY, TOTP_SHA1_CODES[1], TOTP_TIMES[1]));
+        assertFalse(verifier.verifyTotp("user", TOTP_SHA1, SHA1_KEY, TOTP_SHA1_CODES[1], TOTP_TIMES[1]));
+    }
+
+    @Test
+    public void totpWindowAcceptsPreviousStep() throws IOException {
+        assertTrue(verifier.verifyTotp("user", TOTP_SHA1, SHA1_KEY, TOTP_SHA1_CODES[0], 59 + 30));
+        assertFalse(verifier.verifyTotp("other", TOTP_SHA1, SHA1_KEY, TOTP_SHA1_CODES[0], 59 + 60));
+    }
+
+    @Test
+    public void totpLookAheadIsIndependentOfHotp() throws IOException {
+        assertFalse(verifier.verifyTotp("user", TOTP_SHA1, SHA1_KEY, TOTP_SHA1_CODES[1], TOTP_TIMES[1] - 60));
+        assertTrue(verifier.verifyTotp("user", TOTP_SHA1, SHA1_KEY, TOTP_SHA1_CODES[1], TOTP_TIMES[1] - 30));
+    }
+
+    @Test
+    public void credentialsWithSameLabelAreIndependent() throws IOException {
+        assertTrue(verifier.verifyHotp("alice", HOTP, SHA1_KEY, HOTP_CODES[0]));
+        assertTrue(verifier.verifyHotp("bob", HOTP, SHA1_KEY, HOTP_CODES[0]));
+        assertTrue(verifier.verifyTotp("alice", TOTP_SHA1, SHA1_KEY, TOTP_SHA1_CODES[0], TOTP_TIMES[0]));
+        assertTrue(verifier.verifyTotp("bob", TOTP_SHA1, SHA1_KEY, TOTP_SHA1_CODES[0], TOTP_TIMES[0]));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroPeriod() throws IOException {
+        verifier.verifyTotp("user", TOTP_SHA1, SHA1_KEY, TOTP_SHA1_CODES[0], TOTP_TIMES[0], 0);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsEmptyKey() throws IOException {
+        verifier.verifyHotp("user", HOTP, new byte[0], HOTP_CODES[0]);
+    }
+}